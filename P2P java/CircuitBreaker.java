@@ -0,0 +1,52 @@
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether a call may go out now. Once the open period has passed, exactly one
+     * caller is let through as the half-open probe; its outcome decides whether
+     * the breaker closes again or stays open for another period.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
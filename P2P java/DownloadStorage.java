@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class DownloadStorage {
+
+    public enum SyncPolicy {
+        NONE,        // leave flushing to the OS
+        PERIODIC,    // force to disk at most every syncIntervalMillis
+        ON_COMPLETE  // force to disk once, before the file is committed
+    }
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String OFFSET_SUFFIX = ".part.offset";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 16;
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 2000;
+
+    private final Path downloadDir;
+    private final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "download-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile SyncPolicy syncPolicy = SyncPolicy.ON_COMPLETE;
+    private volatile long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+
+    public DownloadStorage(Path downloadDir) {
+        this.downloadDir = downloadDir;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            bufferPool.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+        }
+    }
+
+    public void setSyncPolicy(SyncPolicy policy, long intervalMillis) {
+        this.syncPolicy = policy;
+        this.syncIntervalMillis = intervalMillis;
+    }
+
+    /** Offset to resume a partial download from, or 0 when there is none to resume. */
+    public long resumeOffset(String fileName) throws IOException {
+        Path offsetFile = downloadDir.resolve(fileName + OFFSET_SUFFIX);
+        if (Files.notExists(downloadDir.resolve(fileName + PART_SUFFIX)) || Files.notExists(offsetFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Size of the completed download, or -1 if there is none. */
+    public long completeSize(String fileName) throws IOException {
+        Path complete = downloadDir.resolve(fileName);
+        return Files.exists(complete) ? Files.size(complete) : -1;
+    }
+
+    public PartialFile open(String fileName, long offset, long totalSize) throws IOException {
+        return new PartialFile(fileName, offset, totalSize);
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    /**
+     * A download in progress. Data lands in {@code <name>.part}, extended to the
+     * final length up front, and is only renamed to {@code <name>} by {@link #commit()}.
+     */
+    public class PartialFile implements Closeable {
+        private final Path finalPath;
+        private final Path partPath;
+        private final Path offsetPath;
+        private final FileChannel channel;
+        private final long totalSize;
+        private ByteBuffer current;
+        private long position;
+        private volatile long writtenOffset;
+        private volatile IOException failure;
+        private long lastSync = System.currentTimeMillis();
+        private boolean closed;
+
+        private PartialFile(String fileName, long offset, long totalSize) throws IOException {
+            this.finalPath = downloadDir.resolve(fileName);
+            this.partPath = downloadDir.resolve(fileName + PART_SUFFIX);
+            this.offsetPath = downloadDir.resolve(fileName + OFFSET_SUFFIX);
+            this.channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            this.totalSize = totalSize;
+            if (channel.size() < totalSize) {
+                // Sets the final length only; most file systems leave this sparse and reserve no blocks
+                channel.write(ByteBuffer.wrap(new byte[1]), totalSize - 1);
+            }
+            this.position = offset;
+            this.writtenOffset = offset;
+        }
+
+        public Path getPartPath() {
+            return partPath;
+        }
+
+        public void write(byte[] data, int off, int len) throws IOException {
+            checkFailure();
+            while (len > 0) {
+                if (current == null) {
+                    current = takeBuffer();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(data, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    submitCurrent();
+                }
+            }
+        }
+
+        /** Blocks until every write handed to the writer thread has reached the channel. */
+        public void flush() throws IOException {
+            if (current != null) {
+                submitCurrent();
+            }
+            try {
+                writer.submit(() -> { }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing " + partPath, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Write-behind failed for " + partPath, e.getCause());
+            }
+            checkFailure();
+        }
+
+        /** Flushes, syncs if the policy asks for it, and atomically renames the part file into place. */
+        public void commit() throws IOException {
+            flush();
+            if (syncPolicy != SyncPolicy.NONE) {
+                channel.force(true);
+            }
+            closeChannel();
+            try {
+                Files.move(partPath, finalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partPath, finalPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(offsetPath);
+            if (syncPolicy != SyncPolicy.NONE) {
+                syncDownloadDir();
+            }
+        }
+
+        /** Drops the part file so the next attempt starts from scratch. */
+        public void discard() throws IOException {
+            try {
+                flush();
+            } catch (IOException ignored) {}
+            closeChannel();
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(offsetPath);
+        }
+
+        /**
+         * Keeps the part file so the download can be resumed later. The offset is only
+         * recorded while the body is incomplete; a fully written part that was never
+         * committed is verified again from scratch rather than reported as done.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            try {
+                flush();
+                if (syncPolicy != SyncPolicy.NONE) {
+                    channel.force(false);
+                }
+                if (writtenOffset < totalSize) {
+                    saveOffset();
+                }
+            } finally {
+                closeChannel();
+            }
+        }
+
+        private void submitCurrent() {
+            ByteBuffer buf = current;
+            current = null;
+            buf.flip();
+            long writeAt = position;
+            position += buf.remaining();
+            writer.execute(() -> {
+                try {
+                    if (failure == null) {
+                        long at = writeAt;
+                        while (buf.hasRemaining()) {
+                            at += channel.write(buf, at);
+                        }
+                        writtenOffset = at;
+                        if (syncPolicy == SyncPolicy.PERIODIC
+                                && System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+                            channel.force(false);
+                            saveOffset();
+                            lastSync = System.currentTimeMillis();
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    buf.clear();
+                    bufferPool.offer(buf);
+                }
+            });
+        }
+
+        private ByteBuffer takeBuffer() throws IOException {
+            try {
+                return bufferPool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a write buffer", e);
+            }
+        }
+
+        // Makes the rename itself durable; not every platform can open a directory for this
+        private void syncDownloadDir() {
+            try (FileChannel dir = FileChannel.open(downloadDir, StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException ignored) {}
+        }
+
+        private void saveOffset() throws IOException {
+            Files.write(offsetPath, Long.toString(writtenOffset).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void closeChannel() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (current != null) {
+                current.clear();
+                bufferPool.offer(current);
+                current = null;
+            }
+            channel.close();
+        }
+    }
+}
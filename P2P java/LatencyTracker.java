@@ -0,0 +1,29 @@
+import java.util.Arrays;
+
+public class LatencyTracker {
+
+    private static final int MIN_SAMPLES = 5;
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public LatencyTracker(int window) {
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    /** The given percentile of the recent window, or the fallback until enough samples exist. */
+    public synchronized long percentile(double p, long fallback) {
+        if (count < MIN_SAMPLES) return fallback;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
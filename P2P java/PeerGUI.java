@@ -21,6 +21,7 @@ public class PeerGUI extends JFrame implements Peer.PeerListener {
     private DefaultListModel<String> searchResultsModel;
     private JList<String> searchResultsList;
     private JProgressBar progressBar;
+    private JLabel uploadCacheLabel;
     private DefaultListModel<String> peerStatusListModel;
     private JTable transferHistoryTable;
     private DefaultTableModel transferHistoryModel;
@@ -151,7 +152,15 @@ public class PeerGUI extends JFrame implements Peer.PeerListener {
         progressBar = new JProgressBar(0, 100);
         progressBar.setStringPainted(true);
         progressBar.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
-        add(progressBar, BorderLayout.SOUTH);
+        uploadCacheLabel = new JLabel(peer.getUploadCacheStats());
+        uploadCacheLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 5, 10));
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(progressBar, BorderLayout.CENTER);
+        southPanel.add(uploadCacheLabel, BorderLayout.SOUTH);
+        add(southPanel, BorderLayout.SOUTH);
+
+        // Refresh upload cache stats every few seconds
+        new Timer(5000, e -> uploadCacheLabel.setText(peer.getUploadCacheStats())).start();
 
         // Handle graceful shutdown
         addWindowListener(new WindowAdapter() {
@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SearchCache {
+
+    public static class Entry {
+        public final List<String> results;
+        public final String shareVersion;
+        private volatile long validatedAt;
+
+        Entry(List<String> results, String shareVersion) {
+            this.results = results;
+            this.shareVersion = shareVersion;
+            this.validatedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    public SearchCache(int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized Entry get(String peer, String keyword) {
+        return entries.get(key(peer, keyword));
+    }
+
+    public synchronized void put(String peer, String keyword, List<String> results, String shareVersion) {
+        entries.put(key(peer, keyword), new Entry(new ArrayList<>(results), shareVersion));
+    }
+
+    /** True while the entry can be served without asking the peer anything. */
+    public boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.validatedAt < ttlMillis;
+    }
+
+    /** Marks an entry as confirmed current after the peer reported an unchanged share version. */
+    public void revalidated(Entry entry) {
+        entry.validatedAt = System.currentTimeMillis();
+    }
+
+    private static String key(String peer, String keyword) {
+        return peer + "\n" + keyword;
+    }
+}
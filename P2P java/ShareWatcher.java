@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+public class ShareWatcher {
+
+    // Random per start, so versions from different runs do not collide whatever the clock does
+    private final String epoch = Long.toHexString(new SecureRandom().nextLong());
+    private final AtomicLong version = new AtomicLong();
+    private WatchService watchService;
+
+    public synchronized void watch(Path dir) {
+        shutdown();
+        version.incrementAndGet();
+        try {
+            WatchService ws = FileSystems.getDefault().newWatchService();
+            registerAll(ws, dir);
+            watchService = ws;
+            Thread t = new Thread(() -> processEvents(ws), "share-watcher");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            System.err.println("Error watching shared directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Changes whenever anything under the shared directory is created, deleted or
+     * modified. Opaque to peers: they only ever compare it for equality.
+     */
+    public String getVersion() {
+        return epoch + ":" + version.get();
+    }
+
+    public synchronized void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {}
+            watchService = null;
+        }
+    }
+
+    private void registerAll(WatchService ws, Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                d.register(ws, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+
+    private void processEvents(WatchService ws) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    version.incrementAndGet();
+                    if (event.kind() == ENTRY_CREATE) {
+                        Path child = dir.resolve((Path) event.context());
+                        if (Files.isDirectory(child)) {
+                            try {
+                                registerAll(ws, child);
+                            } catch (IOException e) {
+                                System.err.println("Error watching " + child + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // watcher replaced or shut down
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UploadChunkCache {
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final long POPULARITY_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static class Entry {
+        final CompletableFuture<ByteBuffer> data = new CompletableFuture<>();
+        final ByteBuffer buffer;
+        volatile int bytes;
+        private int pins = 1; // the loader holds the first pin
+        private boolean evicted;
+        private double score = 1;
+        private long scoredAt = System.nanoTime();
+
+        Entry(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        synchronized boolean pin() {
+            if (evicted) return false;
+            pins++;
+            long now = System.nanoTime();
+            score = scoreAt(now) + 1;
+            scoredAt = now;
+            return true;
+        }
+
+        /** Returns the buffer once it is both evicted and no longer read by anyone. */
+        synchronized ByteBuffer unpin() {
+            pins--;
+            return evicted && pins == 0 ? buffer : null;
+        }
+
+        synchronized boolean isPinned() {
+            return pins > 0;
+        }
+
+        synchronized ByteBuffer evict() {
+            evicted = true;
+            return pins == 0 ? buffer : null;
+        }
+
+        // Popularity decays with time rather than with traffic, so a long scan cannot wash out hot chunks
+        synchronized double scoreAt(long now) {
+            return score * Math.pow(0.5, (double) (now - scoredAt) / POPULARITY_HALF_LIFE_NANOS);
+        }
+    }
+
+    private final long capacityBytes;
+    private final int maxChunks;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Chunks read once and not cached; a second access admits them
+    private final Map<String, Boolean> seenOnce;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private int allocatedBuffers;
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UploadChunkCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        this.maxChunks = (int) (capacityBytes / CHUNK_SIZE);
+        this.freeBuffers = new ArrayBlockingQueue<>(Math.max(1, maxChunks));
+        int seenCapacity = Math.max(16, 4 * maxChunks);
+        this.seenOnce = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > seenCapacity;
+            }
+        });
+    }
+
+    /**
+     * Writes one chunk of the file, starting {@code from} bytes into it, to {@code out}.
+     * A chunk is only cached from its second access on, so one-off downloads stream
+     * straight from disk through the caller's channel. Once cached, requests that
+     * arrive while it loads wait on that single read. Size and modification time
+     * are part of the key, so a changed file is never served from stale chunks.
+     */
+    public void writeChunk(FileChannel channel, Path file, long fileSize, long lastModified, long index,
+                           int from, OutputStream out, byte[] scratch) throws IOException {
+        String key = file.toAbsolutePath() + "|" + fileSize + "|" + lastModified + "|" + index;
+        long position = index * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, fileSize - position);
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.pin()) {
+            hits.incrementAndGet();
+            serve(entry, file, index, from, out, scratch);
+            return;
+        }
+        misses.incrementAndGet();
+        ByteBuffer buf = seenOnce.remove(key) != null ? acquireBuffer() : null;
+        if (buf == null) {
+            seenOnce.put(key, Boolean.TRUE);
+            streamFromDisk(channel, position + from, length - from, out, scratch);
+            return;
+        }
+        Entry fresh = new Entry(buf);
+        Entry existing = entries.putIfAbsent(key, fresh);
+        if (existing != null) {
+            recycle(buf);
+            if (existing.pin()) {
+                serve(existing, file, index, from, out, scratch);
+            } else {
+                streamFromDisk(channel, position + from, length - from, out, scratch);
+            }
+            return;
+        }
+        load(key, fresh, channel, position, length);
+        serve(fresh, file, index, from, out, scratch);
+    }
+
+    /** One-line summary of size and hit rate, for display. */
+    public String getStatsSummary() {
+        return String.format("Upload cache: %.1f / %.1f MB in %d chunks, hit rate %.1f%% (%d hits, %d misses)",
+                getSizeBytes() / (1024.0 * 1024), capacityBytes / (1024.0 * 1024), getChunkCount(),
+                getHitRate() * 100, getHits(), getMisses());
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public int getChunkCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private void load(String key, Entry entry, FileChannel channel, long position, int length) {
+        try {
+            ByteBuffer buf = entry.buffer;
+            buf.clear().limit(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) == -1) {
+                    throw new EOFException("Unexpected end of file");
+                }
+            }
+            buf.flip();
+            entry.bytes = length;
+            sizeBytes.addAndGet(length);
+            entry.data.complete(buf);
+        } catch (IOException | RuntimeException e) {
+            if (entries.remove(key, entry)) {
+                ByteBuffer freed = entry.evict();
+                if (freed != null) recycle(freed);
+            }
+            entry.data.completeExceptionally(e);
+        }
+    }
+
+    /** Copies a pinned entry to the stream and releases the pin. */
+    private void serve(Entry entry, Path file, long index, int from, OutputStream out, byte[] scratch) throws IOException {
+        try {
+            ByteBuffer view = entry.data.get().duplicate();
+            view.position(from);
+            while (view.hasRemaining()) {
+                int n = Math.min(scratch.length, view.remaining());
+                view.get(scratch, 0, n);
+                out.write(scratch, 0, n);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chunk " + index + " of " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read chunk " + index + " of " + file, e.getCause());
+        } finally {
+            ByteBuffer freed = entry.unpin();
+            if (freed != null) recycle(freed);
+        }
+    }
+
+    private void streamFromDisk(FileChannel channel, long position, int length, OutputStream out, byte[] scratch) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(scratch);
+        while (length > 0) {
+            buf.clear().limit(Math.min(scratch.length, length));
+            int n = channel.read(buf, position);
+            if (n == -1) {
+                throw new EOFException("Unexpected end of file");
+            }
+            out.write(scratch, 0, n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Takes a buffer from the fixed pool, allocating up to capacity and evicting the
+     * least popular unread chunks after that. Returns null when every buffer is being
+     * read, in which case the caller streams from disk instead.
+     */
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buf = freeBuffers.poll();
+        if (buf != null) return buf;
+        synchronized (this) {
+            if (allocatedBuffers < maxChunks) {
+                allocatedBuffers++;
+                return ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+        }
+        // Only unpinned chunks are evicted; a reader can still pin one in between, and then it frees on unpin
+        while (evictLeastPopular()) {
+            buf = freeBuffers.poll();
+            if (buf != null) return buf;
+        }
+        return freeBuffers.poll();
+    }
+
+    private synchronized boolean evictLeastPopular() {
+        long now = System.nanoTime();
+        Map.Entry<String, Entry> victim = null;
+        double victimScore = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry candidate = e.getValue();
+            if (!candidate.data.isDone() || candidate.data.isCompletedExceptionally() || candidate.isPinned()) {
+                continue;
+            }
+            double score = candidate.scoreAt(now);
+            if (victim == null || score < victimScore) {
+                victim = e;
+                victimScore = score;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (entries.remove(victim.getKey(), victim.getValue())) {
+            sizeBytes.addAndGet(-victim.getValue().bytes);
+            ByteBuffer freed = victim.getValue().evict();
+            if (freed != null) recycle(freed);
+        }
+        return true;
+    }
+
+    private void recycle(ByteBuffer buf) {
+        buf.clear();
+        freeBuffers.offer(buf);
+    }
+}
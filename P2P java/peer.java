@@ -3,6 +3,7 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.*;
 import java.security.cert.CertificateException;
@@ -42,15 +43,39 @@ public class Peer {
     private static final String KEY_STORE_PATH = "keystore.jks";
     private static final String TRUST_STORE_PATH = "truststore.jks";
     private static final String STORE_PASSWORD = "password";
+    private static final int SEARCH_CACHE_CAPACITY = 256;
+    private static final long SEARCH_CACHE_TTL_MILLIS = 30_000;
+    private static final long UPLOAD_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+    // The download reply header waits for the serving peer to hash the whole file on a cold checksum cache
+    private static final int DEFAULT_HEADER_TIMEOUT_MILLIS = 120_000;
+    private static final int BREAKER_FAILURE_THRESHOLD = 3;
+    private static final long BREAKER_OPEN_MILLIS = 30_000;
+    private static final int HEALTH_CHECK_INTERVAL_SECONDS = 15;
+    private static final int LATENCY_WINDOW = 64;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final long HEDGE_DEFAULT_DELAY_MILLIS = 1000;
 
     private Path sharedDirPath;
     private int port;
     private ExecutorService threadPool = Executors.newFixedThreadPool(10);
-    private List<ConnectionHandler> connections = new ArrayList<>();
+    private final ExecutorService requestPool = Executors.newCachedThreadPool();
+    private final ExecutorService peerCallPool = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor();
+    private List<ConnectionHandler> connections = new CopyOnWriteArrayList<>();
     private PeerDiscoveryService discoveryService;
+    private final DownloadStorage downloadStorage = new DownloadStorage(Paths.get(DOWNLOAD_DIR));
+    private final ShareWatcher shareWatcher = new ShareWatcher();
+    private final SearchCache searchCache = new SearchCache(SEARCH_CACHE_CAPACITY, SEARCH_CACHE_TTL_MILLIS);
+    private final UploadChunkCache uploadCache = new UploadChunkCache(UPLOAD_CACHE_BYTES);
+    private final Map<Path, String> checksumCache = new ConcurrentHashMap<>();
     private PeerListener listener;
     private SSLContext sslContext;
-    private final Map<String, Integer> connectionFailures = new ConcurrentHashMap<>();
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile int headerTimeoutMillis = DEFAULT_HEADER_TIMEOUT_MILLIS;
+    private final Set<String> activeDownloads = ConcurrentHashMap.newKeySet();
     private final Map<String, Boolean> peerStatusMap = new ConcurrentHashMap<>();
     private final List<TransferRecord> transferHistory = Collections.synchronizedList(new ArrayList<>());
 
@@ -82,6 +107,8 @@ public class Peer {
 
     public void start() {
         discoveryService.start();
+        shareWatcher.watch(sharedDirPath);
+        healthChecker.scheduleAtFixedRate(this::checkPeerHealth, HEALTH_CHECK_INTERVAL_SECONDS, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
         new Thread(this::startServer).start();
     }
 
@@ -91,6 +118,7 @@ public class Peer {
                 Files.createDirectories(newDir);
             }
             this.sharedDirPath = newDir;
+            shareWatcher.watch(newDir);
             if (listener != null) {
                 listener.onMessageReceived("Shared directory set to: " + newDir.toAbsolutePath());
             }
@@ -101,6 +129,20 @@ public class Peer {
         }
     }
 
+    public String getUploadCacheStats() {
+        return uploadCache.getStatsSummary();
+    }
+
+    public void setPeerTimeouts(int connectMillis, int readMillis, int headerMillis) {
+        this.connectTimeoutMillis = connectMillis;
+        this.readTimeoutMillis = readMillis;
+        this.headerTimeoutMillis = headerMillis;
+    }
+
+    public void setDownloadSyncPolicy(DownloadStorage.SyncPolicy policy, long intervalMillis) {
+        downloadStorage.setSyncPolicy(policy, intervalMillis);
+    }
+
     private SSLContext createSSLContext() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, KeyManagementException {
         KeyStore keyStore = KeyStore.getInstance("JKS");
         try (FileInputStream keyStoreStream = new FileInputStream(KEY_STORE_PATH)) {
@@ -128,7 +170,7 @@ public class Peer {
                 }
                 while (true) {
                     SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                    threadPool.execute(() -> handleClient(clientSocket));
+                    requestPool.execute(() -> handleClient(clientSocket));
                 }
             }
         } catch (IOException e) {
@@ -139,20 +181,46 @@ public class Peer {
     }
 
     private void handleClient(Socket socket) {
-        try (
+        boolean handedOff = false;
+        try {
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             OutputStream outStream = socket.getOutputStream();
-        ) {
             String command = in.readLine();
-            if (command.startsWith("search")) {
+            if (command == null) {
+                return;
+            } else if (command.startsWith("search")) {
                 handleSearch(command, outStream);
             } else if (command.startsWith("download")) {
-                handleDownload(command, outStream, socket.getInetAddress().getHostAddress());
+                // Only uploads take one of the bounded workers, so a peer busy serving files
+                // still completes handshakes, health probes and searches straight away
+                String peerAddr = socket.getInetAddress().getHostAddress();
+                threadPool.execute(() -> {
+                    try {
+                        handleDownload(command, outStream, peerAddr);
+                    } catch (IOException e) {
+                        if (listener != null) {
+                            listener.onMessageReceived("Client handling error: " + e.getMessage());
+                        }
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {}
+                    }
+                });
+                handedOff = true;
+            } else if (command.startsWith("version")) {
+                new PrintWriter(outStream, true).println("VERSION " + shareWatcher.getVersion());
             }
         } catch (IOException e) {
             if (listener != null) {
                 listener.onMessageReceived("Client handling error: " + e.getMessage());
             }
+        } finally {
+            if (!handedOff) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
         }
     }
 
@@ -161,6 +229,8 @@ public class Peer {
         if (parts.length < 2) return;
         String keyword = parts[1].trim();
         PrintWriter out = new PrintWriter(outStream, true);
+        // Read the version before scanning so a change made mid-scan is never cached under it
+        String version = shareWatcher.getVersion();
         try {
             Files.walk(sharedDirPath)
                 .filter(Files::isRegularFile)
@@ -177,6 +247,8 @@ public class Peer {
                 });
         } catch (IOException ignored) {}
         out.println("END");
+        // After the terminator, so peers that stop reading at END never see it
+        out.println("VERSION " + version);
     }
 
     private boolean matchesPattern(String text, String pattern) {
@@ -211,20 +283,20 @@ public class Peer {
             return;
         }
         try {
-            String checksum = getFileChecksum(filePath.toFile());
-            dataOut.writeUTF(checksum);
             long fileSize = Files.size(filePath);
+            long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+            String checksum = getSharedFileChecksum(filePath, fileSize, lastModified);
+            dataOut.writeUTF(checksum);
             if (offset >= fileSize) {
                 dataOut.writeLong(0);
                 return;
             }
             dataOut.writeLong(fileSize - offset);
-            try (RandomAccessFile fileIn = new RandomAccessFile(filePath.toFile(), "r")) {
-                fileIn.seek(offset);
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    dataOut.write(buffer, 0, bytesRead);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                for (long index = offset / UploadChunkCache.CHUNK_SIZE; index * UploadChunkCache.CHUNK_SIZE < fileSize; index++) {
+                    int from = (int) Math.max(0, offset - index * UploadChunkCache.CHUNK_SIZE);
+                    uploadCache.writeChunk(channel, filePath, fileSize, lastModified, index, from, dataOut, buffer);
                 }
             }
             recordTransfer(new TransferRecord(fileName, "UPLOAD", "SUCCESS", peerAddr));
@@ -234,6 +306,18 @@ public class Peer {
         }
     }
 
+    // Hashing is a full read of the file, so remember it per size/mtime instead of redoing it per request
+    private String getSharedFileChecksum(Path file, long fileSize, long lastModified) throws IOException, NoSuchAlgorithmException {
+        String stamp = fileSize + "|" + lastModified + "|";
+        String cached = checksumCache.get(file);
+        if (cached != null && cached.startsWith(stamp)) {
+            return cached.substring(stamp.length());
+        }
+        String checksum = getFileChecksum(file.toFile());
+        checksumCache.put(file, stamp + checksum);
+        return checksum;
+    }
+
     private String getFileChecksum(File file) throws IOException, NoSuchAlgorithmException {
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
         try (FileInputStream fis = new FileInputStream(file)) {
@@ -258,15 +342,16 @@ public class Peer {
     }
 
     public void search(String keyword) {
-        String command = "search " + keyword;
         if (connections.isEmpty()) {
             if (listener != null) {
                 listener.onMessageReceived("No active connections. Use 'connect' or 'discover' first.");
             }
             return;
         }
+        // Each peer answers for its own files only, so there is no second peer to hedge a search
+        // with; fanning out in parallel keeps one slow peer from holding up everyone else's results
         for (ConnectionHandler conn : connections) {
-            conn.sendCommand(command);
+            peerCallPool.execute(() -> conn.search(keyword.trim()));
         }
     }
 
@@ -277,8 +362,210 @@ public class Peer {
             }
             return;
         }
+        // Two downloads of one name would share the same .part file
+        if (!activeDownloads.add(fileName)) {
+            if (listener != null) listener.onMessageReceived("Already downloading: " + fileName);
+            return;
+        }
+        peerCallPool.execute(() -> {
+            try {
+                hedgedDownload(fileName);
+            } finally {
+                activeDownloads.remove(fileName);
+            }
+        });
+    }
+
+    /**
+     * Asks peers for the file one at a time, in connection order. If the current
+     * peer has not answered by its latency percentile, the same request goes to the
+     * next peer too, and whichever reply arrives first is the one streamed from.
+     * Peers that fail or do not have the file are passed over straight away.
+     */
+    private void hedgedDownload(String fileName) {
+        long offset;
+        boolean checkingComplete;
+        try {
+            long resumeOffset = downloadStorage.resumeOffset(fileName);
+            // With nothing to resume, ask from the end of any completed copy: a 0 reply means it is current
+            long completeSize = resumeOffset == 0 ? downloadStorage.completeSize(fileName) : -1;
+            checkingComplete = completeSize >= 0;
+            offset = checkingComplete ? completeSize : resumeOffset;
+        } catch (IOException e) {
+            if (listener != null) listener.onMessageReceived("Cannot resume " + fileName + ": " + e.getMessage());
+            return;
+        }
+        Iterator<ConnectionHandler> candidates = connections.iterator();
+        CompletionService<DownloadReply> replies = new ExecutorCompletionService<>(peerCallPool);
+        DownloadReply winner = null;
+        int inFlight = 0;
+        boolean launchNext = true;
+        boolean canHedge = false;
+        long hedgeDeadline = 0;
+        try {
+            while (winner == null) {
+                if (launchNext) {
+                    launchNext = false;
+                    ConnectionHandler next = nextAvailable(candidates);
+                    if (next != null) {
+                        if (inFlight > 0 && listener != null) {
+                            listener.onMessageReceived("Hedging download of " + fileName + " to " + next.address());
+                        }
+                        replies.submit(() -> next.requestDownload(fileName, offset));
+                        inFlight++;
+                        canHedge = true;
+                        hedgeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(next.hedgeDelayMillis());
+                    } else if (inFlight == 0) {
+                        break;
+                    } else {
+                        canHedge = false;
+                    }
+                }
+                Future<DownloadReply> done = canHedge
+                        ? replies.poll(hedgeDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        : replies.take();
+                if (done == null) {
+                    launchNext = true;
+                    continue;
+                }
+                inFlight--;
+                DownloadReply reply;
+                try {
+                    reply = done.get();
+                } catch (ExecutionException e) {
+                    launchNext = true;
+                    continue;
+                }
+                if (reply.remaining == -1) {
+                    try {
+                        reply.close();
+                    } catch (IOException ignored) {}
+                    if (listener != null) listener.onMessageReceived("File not found on peer " + reply.source.address());
+                    launchNext = true;
+                } else {
+                    winner = reply;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            int stragglers = inFlight;
+            if (stragglers > 0) {
+                peerCallPool.execute(() -> {
+                    for (int i = 0; i < stragglers; i++) {
+                        try {
+                            replies.take().get().close();
+                        } catch (Exception ignored) {}
+                    }
+                });
+            }
+        }
+        if (winner == null) {
+            if (listener != null) listener.onMessageReceived("No reachable peer could serve: " + fileName);
+            return;
+        }
+        receiveDownload(winner, fileName, offset, checkingComplete);
+    }
+
+    private ConnectionHandler nextAvailable(Iterator<ConnectionHandler> candidates) {
+        while (candidates.hasNext()) {
+            ConnectionHandler candidate = candidates.next();
+            if (candidate.breaker.allowRequest()) {
+                return candidate;
+            }
+            if (listener != null) {
+                listener.onMessageReceived("Skipping " + candidate.address() + " (circuit open)");
+            }
+        }
+        return null;
+    }
+
+    private void receiveDownload(DownloadReply reply, String fileName, long offset, boolean checkingComplete) {
+        if (checkingComplete) {
+            long remaining = reply.remaining;
+            try {
+                reply.close();
+            } catch (IOException ignored) {}
+            if (remaining == 0) {
+                if (listener != null) listener.onMessageReceived("File already fully downloaded: " + fileName);
+                return;
+            }
+            // The remote copy no longer matches the local one; fetch all of it into a fresh part file
+            // rather than appending its tail to an empty one
+            try {
+                reply = reply.source.requestDownload(fileName, 0);
+            } catch (IOException e) {
+                return;
+            }
+            offset = 0;
+            if (reply.remaining == -1) {
+                try {
+                    reply.close();
+                } catch (IOException ignored) {}
+                if (listener != null) listener.onMessageReceived("File not found on peer " + reply.source.address());
+                return;
+            }
+        }
+        receiveBody(reply, fileName, offset);
+    }
+
+    /** Streams the rest of the file into its part file; a part that is already fully written goes straight to verification. */
+    private void receiveBody(DownloadReply reply, String fileName, long existingSize) {
+        String peerAddr = reply.source.address();
+        try (DownloadReply r = reply) {
+            long remainingSize = r.remaining;
+            try (DownloadStorage.PartialFile fileOut = downloadStorage.open(fileName, existingSize, existingSize + remainingSize)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long totalRead = existingSize;
+                long bytesToRead = remainingSize;
+                int bytesRead;
+                while (bytesToRead > 0 && (bytesRead = r.read(buffer, (int) Math.min(buffer.length, bytesToRead))) != -1) {
+                    fileOut.write(buffer, 0, bytesRead);
+                    totalRead += bytesRead;
+                    bytesToRead -= bytesRead;
+                    if (listener != null) {
+                        long totalFileSize = existingSize + remainingSize;
+                        listener.onDownloadProgress(fileName, totalFileSize, totalRead);
+                    }
+                }
+                if (bytesToRead > 0) {
+                    if (listener != null) listener.onMessageReceived("Download interrupted, will resume: " + fileName);
+                    return;
+                }
+                fileOut.flush();
+                String localChecksum = getFileChecksum(fileOut.getPartPath().toFile());
+                if (!"NOCHECKSUM".equals(r.checksum) && localChecksum.equals(r.checksum)) {
+                    fileOut.commit();
+                    if (listener != null) listener.onMessageReceived("File downloaded successfully: " + fileName);
+                    recordTransfer(new TransferRecord(fileName, "DOWNLOAD", "SUCCESS", peerAddr));
+                } else {
+                    fileOut.discard();
+                    if (listener != null) listener.onMessageReceived("Checksum mismatch for: " + fileName);
+                    recordTransfer(new TransferRecord(fileName, "DOWNLOAD", "FAILED", peerAddr));
+                }
+            }
+        } catch (PeerReadException e) {
+            reply.source.markFailure();
+            if (listener != null) {
+                listener.onMessageReceived("Download of " + fileName + " from " + peerAddr + " failed: " + e.getCause().getMessage());
+            }
+        } catch (IOException e) {
+            // Local storage trouble (disk full, rename failed, ...) says nothing about the peer
+            if (listener != null) {
+                listener.onMessageReceived("Saving " + fileName + " failed: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            if (listener != null) {
+                listener.onMessageReceived("Error talking to peer " + peerAddr + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void checkPeerHealth() {
         for (ConnectionHandler conn : connections) {
-            conn.sendCommand("download " + fileName);
+            if (conn.breaker.allowRequest()) {
+                peerCallPool.execute(conn::probe);
+            }
         }
     }
 
@@ -296,7 +583,12 @@ public class Peer {
 
     public void shutdown() {
         discoveryService.shutdown();
+        shareWatcher.shutdown();
         threadPool.shutdownNow();
+        requestPool.shutdownNow();
+        healthChecker.shutdownNow();
+        peerCallPool.shutdownNow();
+        downloadStorage.shutdown();
     }
 
     private void updatePeerStatus(String peer, boolean online) {
@@ -313,93 +605,194 @@ public class Peer {
         }
     }
 
+    /** A read from the peer's socket failed, as opposed to a local storage error. */
+    private static class PeerReadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PeerReadException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static class DownloadReply implements Closeable {
+        final ConnectionHandler source;
+        final SSLSocket socket;
+        final DataInputStream in;
+        final String checksum;
+        final long remaining;
+
+        DownloadReply(ConnectionHandler source, SSLSocket socket, DataInputStream in, String checksum, long remaining) {
+            this.source = source;
+            this.socket = socket;
+            this.in = in;
+            this.checksum = checksum;
+            this.remaining = remaining;
+        }
+
+        int read(byte[] buffer, int len) throws PeerReadException {
+            try {
+                return in.read(buffer, 0, len);
+            } catch (IOException e) {
+                throw new PeerReadException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
     private class ConnectionHandler {
         private final String host;
         private final int port;
+        private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS);
+        // Download reply headers only; mixing in cheaper calls would drag the hedge delay down
+        private final LatencyTracker headerLatency = new LatencyTracker(LATENCY_WINDOW);
 
         public ConnectionHandler(String host, int port) {
             this.host = host; this.port = port;
         }
 
-        public void sendCommand(String command) {
+        public String address() {
+            return host + ":" + port;
+        }
+
+        /**
+         * Fresh cached results are served without touching the network. Past the TTL,
+         * a share-version check decides between the cached results and a full search.
+         */
+        public void search(String keyword) {
+            SearchCache.Entry cached = searchCache.get(address(), keyword);
+            if (cached != null && searchCache.isFresh(cached)) {
+                if (listener != null) listener.onSearchResults(host, port, cached.results);
+                return;
+            }
+            if (!breaker.allowRequest()) {
+                if (listener != null) listener.onMessageReceived("Skipping " + address() + " (circuit open)");
+                return;
+            }
             try {
-                SSLSocketFactory ssf = sslContext.getSocketFactory();
-                try (SSLSocket socket = (SSLSocket) ssf.createSocket(host, port)) {
-                    socket.startHandshake();
-                    try (
-                        InputStream inStream = socket.getInputStream();
-                        OutputStream outStream = socket.getOutputStream();
-                        PrintWriter out = new PrintWriter(outStream, true);
-                    ) {
-                        if (command.startsWith("search")) {
-                            out.println(command);
-                            BufferedReader in = new BufferedReader(new InputStreamReader(inStream));
-                            List<String> results = new ArrayList<>();
-                            String line;
-                            while ((line = in.readLine()) != null && !line.equals("END")) {
-                                results.add(line);
-                            }
-                            if (listener != null) {
-                                listener.onSearchResults(host, port, results);
-                            }
-                        } else if (command.startsWith("download")) {
-                            String[] parts = command.split(" ");
-                            if (parts.length < 2) return;
-                            String fileName = parts[1];
-                            Path downloadPath = Paths.get(DOWNLOAD_DIR, fileName);
-                            long existingSize = Files.exists(downloadPath) ? Files.size(downloadPath) : 0;
-                            out.println(command + " " + existingSize);
-                            DataInputStream dataIn = new DataInputStream(inStream);
-                            String remoteChecksum = dataIn.readUTF();
-                            long remainingSize = dataIn.readLong();
-                            if (remainingSize == -1) {
-                                if (listener != null) listener.onMessageReceived("File not found on peer.");
-                                return;
-                            }
-                            if (remainingSize == 0) {
-                                if (listener != null) listener.onMessageReceived("File already fully downloaded: " + fileName);
-                                return;
-                            }
-                            try (RandomAccessFile fileOut = new RandomAccessFile(downloadPath.toFile(), "rw")) {
-                                fileOut.seek(existingSize);
-                                byte[] buffer = new byte[BUFFER_SIZE];
-                                long totalRead = existingSize;
-                                long bytesToRead = remainingSize;
-                                int bytesRead;
-                                while (bytesToRead > 0 && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, bytesToRead))) != -1) {
-                                    fileOut.write(buffer, 0, bytesRead);
-                                    totalRead += bytesRead;
-                                    bytesToRead -= bytesRead;
-                                    if (listener != null) {
-                                        long totalFileSize = existingSize + remainingSize;
-                                        listener.onDownloadProgress(fileName, totalFileSize, totalRead);
-                                    }
-                                }
-                                String localChecksum = getFileChecksum(downloadPath.toFile());
-                                if (!"NOCHECKSUM".equals(remoteChecksum) && localChecksum.equals(remoteChecksum)) {
-                                    listener.onMessageReceived("File downloaded successfully: " + fileName);
-                                    recordTransfer(new TransferRecord(fileName, "DOWNLOAD", "SUCCESS", host+":"+port));
-                                } else {
-                                    listener.onMessageReceived("Checksum mismatch for: " + fileName);
-                                    recordTransfer(new TransferRecord(fileName, "DOWNLOAD", "FAILED", host+":"+port));
-                                }
-                            }
+                if (cached != null && fetchShareVersion().equals(cached.shareVersion)) {
+                    searchCache.revalidated(cached);
+                    if (listener != null) listener.onSearchResults(host, port, cached.results);
+                } else {
+                    try (SSLSocket socket = openSocket();
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        out.println("search " + keyword);
+                        List<String> results = new ArrayList<>();
+                        String line;
+                        while ((line = in.readLine()) != null && !line.equals("END")) {
+                            results.add(line);
+                        }
+                        String versionLine = line != null ? in.readLine() : null;
+                        if (versionLine != null && versionLine.startsWith("VERSION ") && !versionLine.substring(8).trim().isEmpty()) {
+                            searchCache.put(address(), keyword, results, versionLine.substring(8).trim());
+                        }
+                        if (listener != null) {
+                            listener.onSearchResults(host, port, results);
                         }
                     }
                 }
-                updatePeerStatus(host + ":" + port, true);
+                markSuccess();
             } catch (IOException e) {
-                connectionFailures.merge(host + ":" + port, 1, Integer::sum);
-                if (connectionFailures.get(host + ":" + port) >= 3) {
-                    updatePeerStatus(host + ":" + port, false);
-                }
+                markFailure();
                 if (listener != null) {
-                    listener.onMessageReceived("Connection to " + host + ":" + port + " failed: " + e.getMessage());
+                    listener.onMessageReceived("Connection to " + address() + " failed: " + e.getMessage());
                 }
             } catch (Exception e) {
+                markFailure();
                 if (listener != null) {
-                    listener.onMessageReceived("Error talking to peer " + host + ":" + port + ": " + e.getMessage());
+                    listener.onMessageReceived("Error talking to peer " + address() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /** Sends the download request and reads the reply header, leaving the socket open for the body. */
+        public DownloadReply requestDownload(String fileName, long offset) throws IOException {
+            try {
+                SSLSocket socket = openSocket();
+                try {
+                    long start = System.nanoTime();
+                    socket.setSoTimeout(headerTimeoutMillis);
+                    new PrintWriter(socket.getOutputStream(), true).println("download " + fileName + " " + offset);
+                    DataInputStream dataIn = new DataInputStream(socket.getInputStream());
+                    String checksum = dataIn.readUTF();
+                    long remaining = dataIn.readLong();
+                    headerLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    socket.setSoTimeout(readTimeoutMillis);
+                    markSuccess();
+                    return new DownloadReply(this, socket, dataIn, checksum, remaining);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                markFailure();
+                if (listener != null) {
+                    listener.onMessageReceived("Connection to " + address() + " failed: " + e.getMessage());
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Background health check; doubles as the half-open probe once the breaker's
+         * open period is over. Only transport failures count: peers that predate the
+         * version command answer with nothing, which is still a live peer.
+         */
+        public void probe() {
+            try (SSLSocket socket = openSocket();
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                out.println("version");
+                in.readLine();
+                markSuccess();
+            } catch (IOException e) {
+                markFailure();
+            }
+        }
+
+        public long hedgeDelayMillis() {
+            return headerLatency.percentile(HEDGE_PERCENTILE, HEDGE_DEFAULT_DELAY_MILLIS);
+        }
+
+        private void markSuccess() {
+            breaker.recordSuccess();
+            updatePeerStatus(address(), true);
+        }
+
+        private void markFailure() {
+            breaker.recordFailure();
+            if (breaker.getState() == CircuitBreaker.State.OPEN) {
+                updatePeerStatus(address(), false);
+            }
+        }
+
+        private SSLSocket openSocket() throws IOException {
+            SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.startHandshake();
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private String fetchShareVersion() throws IOException {
+            try (SSLSocket socket = openSocket();
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                out.println("version");
+                String line = in.readLine();
+                if (line == null || !line.startsWith("VERSION ") || line.substring(8).trim().isEmpty()) {
+                    throw new IOException("Unexpected version reply: " + line);
                 }
+                return line.substring(8).trim();
             }
         }
     }